@@ -0,0 +1,422 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 croth.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simulation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Golden output check for the faster engines: runs the reference counting of
+ * WindowTest and WindowMixedTest and each engine variant with the same seed and
+ * parameters, diffs every count table exactly against the golden tables and
+ * reports the throughput of each variant side by side.
+ *
+ * The golden tables in golden/ were written by simpleWindowTest of the original
+ * simulations, before any of the engines existed, so the reference itself is
+ * checked as well. The phase scan is also checked at every offset against a
+ * direct count of the fixed windows at that offset.
+ *
+ * To add an engine, add it to the engines of checkWindowTest or
+ * checkWindowMixedTest. Engine 0 is always the reference.
+ *
+ * @author croth
+ */
+public class EquivalenceCheck {
+
+    /* The parameter matrix */
+    static final long[] SEEDS = {1234, 5555};
+    static final int[] TRIALS = {1000, 100000};
+    static final int[] MIXED_TRIALS = {500, 2000};
+    static final double[] EFFICIENCIES = {0.01, 0.1, 0.3};
+    static final int[] UNCERTAINTIES = {0, 2};
+    static final double[] NOISES = {0, 1.0};
+    static final boolean[] DOUBLE_COUNTS = {true, false};
+
+    static final int MAX_WINDOW = 200; // as in WindowTest
+    static final int MAX_WINDOW_MIXED = 30; // WindowMixedTest uses 100, but that takes too long for the whole matrix
+    static final long PHASE_BUDGET = 100000000; // slots counted directly per combination, larger window sizes are not checked per offset
+
+    static final String[] COLUMNS = {"c11", "c12", "c21", "c22"};
+    static final String[] MIXED_COLUMNS = {"c11", "c12", "c21", "c22", "tot a1", "tot a2", "tot b1", "tot b2"};
+
+    /* An engine computes the count table, one row per window size (row 0 is not used) */
+    interface Engine {
+
+        long[][] run();
+    }
+
+    /* The golden tables by parameters, one row per window size (row 0 is not used) */
+    Map<String, long[][]> golden;
+    Map<String, long[][]> goldenMixed;
+
+    String[] engineNames;
+    boolean warmedUp; // the first combination of a table is run once without timing, for the JIT
+    int rotation; // engines run in a different order for every combination, so none always runs first
+    long[] engineNanos;
+    long[] engineTrials;
+    int[] engineMismatches;
+    boolean checkingPhases;
+    int phaseMismatches;
+    String out = "";
+
+    private void checkWindowTest() {
+        engineNames = new String[]{"reference", "phases", "sequential"};
+        startTable("simulation, seed, trials, efficiency, uncertainty, double", true);
+
+        for (long seed : SEEDS) {
+            for (int trials : TRIALS) {
+                for (double efficiency : EFFICIENCIES) {
+                    for (int uncertainty : UNCERTAINTIES) {
+                        for (boolean doubleCounts : DOUBLE_COUNTS) {
+                            WindowTest t = new WindowTest();
+                            t.nrtrials = trials;
+                            t.efficiency = efficiency;
+                            t.uncertainty = uncertainty;
+                            t.acceptDoubleCounts = doubleCounts;
+                            WindowTest.rnd.setSeed(seed);
+                            t.initAngles();
+                            t.createStreams();
+
+                            Engine[] engines = {
+                                /* countCoincidences for each window size, as in simpleWindowTest */
+                                () -> {
+                                    long[][] c = new long[MAX_WINDOW + 1][];
+                                    for (int window = 1; window <= MAX_WINDOW; window++) {
+                                        c[window] = toLong(t.countRow(window));
+                                    }
+                                    return c;
+                                },
+                                /* offset 0 of the incremental phase scan */
+                                () -> {
+                                    long[][] c = new long[MAX_WINDOW + 1][];
+                                    for (int window = 1; window <= MAX_WINDOW; window++) {
+                                        c[window] = new long[]{
+                                            t.countCoincidencesPerPhase(window, 1, 1, t.deta1_part1, t.detb1_part1)[0],
+                                            t.countCoincidencesPerPhase(window, 1, 0, t.deta1_part2, t.detb2_part1)[0],
+                                            t.countCoincidencesPerPhase(window, 0, 1, t.deta2_part1, t.detb1_part2)[0],
+                                            t.countCoincidencesPerPhase(window, 1, 1, t.deta2_part2, t.detb2_part2)[0]};
+                                    }
+                                    return c;
+                                },
+                                /* sequential mode that never decides, so it has to count everything in blocks */
+                                () -> {
+                                    t.blockSize = trials / 7 + 1;
+                                    int[][] counts = t.sequentialCounts(MAX_WINDOW, 0, new SequentialEstimate[MAX_WINDOW + 1]);
+                                    long[][] c = new long[MAX_WINDOW + 1][];
+                                    for (int window = 1; window <= MAX_WINDOW; window++) {
+                                        c[window] = toLong(counts[window]);
+                                    }
+                                    return c;
+                                }
+                            };
+                            String parameters = seed + ", " + trials + ", " + efficiency + ", " + uncertainty + ", " + doubleCounts;
+                            String row = check("WindowTest, " + parameters, engines, golden.get(parameters), COLUMNS, (long) trials * MAX_WINDOW);
+                            String phases = checkPhases(t);
+                            if (!phases.startsWith("same")) {
+                                phaseMismatches++;
+                            }
+                            row += ",, " + phases;
+                            out += row + "\n";
+                            p(row);
+                        }
+                    }
+                }
+            }
+        }
+        endTable();
+    }
+
+    private void checkWindowMixedTest() {
+        engineNames = new String[]{"reference", "sequential"};
+        startTable("simulation, seed, trials, efficiency, uncertainty, noise, double", false);
+
+        for (long seed : SEEDS) {
+            for (int trials : MIXED_TRIALS) {
+                for (double efficiency : EFFICIENCIES) {
+                    for (int uncertainty : UNCERTAINTIES) {
+                        for (double noise : NOISES) {
+                            for (boolean doubleCounts : DOUBLE_COUNTS) {
+                                WindowMixedTest t = new WindowMixedTest();
+                                t.nrtrials = trials;
+                                t.efficiency = efficiency;
+                                t.uncertainty = uncertainty;
+                                t.pnoise = noise;
+                                t.acceptDoubleCounts = doubleCounts;
+                                t.initAngles();
+
+                                Engine[] engines = {
+                                    /* runTrials for each window size, as in simpleWindowTest */
+                                    () -> {
+                                        WindowMixedTest.rnd.setSeed(seed);
+                                        long[][] c = new long[MAX_WINDOW_MIXED + 1][];
+                                        for (int window = 1; window <= MAX_WINDOW_MIXED; window++) {
+                                            WindowMixedTest.Counts counts = t.newCounts(window);
+                                            t.runTrials(window, 0, trials, counts, null);
+                                            c[window] = toRow(counts);
+                                        }
+                                        return c;
+                                    },
+                                    /* sequential mode that never decides, with one block of all trials per window size
+                                    (the window sizes share one random generator, so smaller blocks would change the results) */
+                                    () -> {
+                                        WindowMixedTest.rnd.setSeed(seed);
+                                        t.maxTrialsFactor = 1;
+                                        t.blockSize = trials;
+                                        WindowMixedTest.Counts[] counts = t.sequentialCounts(MAX_WINDOW_MIXED, 0, new SequentialEstimate[MAX_WINDOW_MIXED + 1]);
+                                        long[][] c = new long[MAX_WINDOW_MIXED + 1][];
+                                        for (int window = 1; window <= MAX_WINDOW_MIXED; window++) {
+                                            c[window] = toRow(counts[window]);
+                                        }
+                                        return c;
+                                    }
+                                };
+                                String parameters = seed + ", " + trials + ", " + efficiency + ", " + uncertainty + ", " + noise + ", " + doubleCounts;
+                                String row = check("WindowMixedTest, " + parameters, engines, goldenMixed.get(parameters), MIXED_COLUMNS, (long) trials * MAX_WINDOW_MIXED);
+                                out += row + "\n";
+                                p(row);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        endTable();
+    }
+
+    /* Every offset of the phase scan against a direct count of the fixed windows at that offset,
+    for the window sizes that fit into PHASE_BUDGET. "same (window sizes 1 to n)", or the first count that differs */
+    private String checkPhases(WindowTest t) {
+        boolean[][] deta = {t.deta1_part1, t.deta1_part2, t.deta2_part1, t.deta2_part2};
+        boolean[][] detb = {t.detb1_part1, t.detb2_part1, t.detb1_part2, t.detb2_part2};
+        int[] a = {1, 1, 0, 1};
+        int[] b = {1, 0, 1, 1};
+
+        long slots = 0;
+        int window = 1;
+        for (; window <= MAX_WINDOW; window++) {
+            slots += (long) deta.length * t.nrtrials * window;
+            if (slots > PHASE_BUDGET && window > 1) {
+                break;
+            }
+            for (int i = 0; i < deta.length; i++) {
+                int[] counts = t.countCoincidencesPerPhase(window, a[i], b[i], deta[i], detb[i]);
+                for (int offset = 0; offset < window; offset++) {
+                    int count = 0;
+                    for (int start = offset; start + window <= t.nrtrials; start += window) {
+                        count += t.coincidence(start, window, a[i], b[i], deta[i], detb[i]);
+                    }
+                    if (counts[offset] != count) {
+                        return "window " + window + " " + COLUMNS[i] + " offset " + offset + " " + count + " != " + counts[offset];
+                    }
+                }
+            }
+        }
+        return "same (window sizes 1 to " + (window - 1) + ")";
+    }
+
+    private static long[] toLong(int[] row) {
+        long[] c = new long[row.length];
+        for (int i = 0; i < row.length; i++) {
+            c[i] = row[i];
+        }
+        return c;
+    }
+
+    private static long[] toRow(WindowMixedTest.Counts c) {
+        return new long[]{c.c11, c.c12, c.c21, c.c22, c.tota1, c.tota2, c.totb1, c.totb2};
+    }
+
+    /* Golden file lines are the parameters, the window size and the counts, lines starting with # are comments */
+    private static Map<String, long[][]> readGolden(File file, int nrparameters, int nrcolumns) throws IOException {
+        Map<String, long[][]> tables = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(", ");
+                String parameters = fields[0];
+                for (int i = 1; i < nrparameters; i++) {
+                    parameters += ", " + fields[i];
+                }
+                int window = Integer.parseInt(fields[nrparameters]);
+                long[][] table = tables.get(parameters);
+                if (table == null || table.length <= window) {
+                    long[][] larger = new long[window + 1][];
+                    if (table != null) {
+                        System.arraycopy(table, 0, larger, 0, table.length);
+                    }
+                    table = larger;
+                    tables.put(parameters, table);
+                }
+                table[window] = new long[nrcolumns];
+                for (int i = 0; i < nrcolumns; i++) {
+                    table[window][i] = Long.parseLong(fields[nrparameters + 1 + i]);
+                }
+            }
+        }
+        return tables;
+    }
+
+    private void startTable(String parameters, boolean phases) {
+        engineNanos = new long[engineNames.length];
+        engineTrials = new long[engineNames.length];
+        engineMismatches = new int[engineNames.length];
+        checkingPhases = phases;
+        phaseMismatches = 0;
+        warmedUp = false;
+        rotation = 0;
+
+        String st = parameters;
+        for (String name : engineNames) {
+            st += ",, " + name + " ms, " + name + " Mtrials/s, " + name + " diff";
+        }
+        if (phases) {
+            st += ",, phase offsets";
+        }
+        out += st + "\n";
+        p(st);
+    }
+
+    /* Run all engines for one parameter combination and compare each of them, the reference (engine 0) included, with the golden table */
+    private String check(String row, Engine[] engines, long[][] expected, String[] columns, long trials) {
+        if (!warmedUp) {
+            for (Engine engine : engines) {
+                engine.run();
+            }
+            warmedUp = true;
+        }
+
+        long[][][] results = new long[engines.length][][];
+        long[] nanos = new long[engines.length];
+        for (int i = 0; i < engines.length; i++) {
+            int e = (i + rotation) % engines.length;
+            long start = System.nanoTime();
+            results[e] = engines[e].run();
+            nanos[e] = System.nanoTime() - start;
+        }
+        rotation++;
+
+        for (int e = 0; e < engines.length; e++) {
+            engineNanos[e] += nanos[e];
+            engineTrials[e] += trials;
+
+            String diff = expected == null ? "no golden table" : diff(expected, results[e], columns);
+            if (!diff.equals("same")) {
+                engineMismatches[e]++;
+            }
+            row += ",, " + nanos[e] / 1000000 + ", " + throughput(trials, nanos[e]) + ", " + diff;
+        }
+        return row;
+    }
+
+    private void endTable() {
+        String st = "total";
+        for (int e = 0; e < engineNames.length; e++) {
+            st += ",, " + engineNanos[e] / 1000000 + ", " + throughput(engineTrials[e], engineNanos[e]) + ", " + engineMismatches[e] + " differ";
+        }
+        if (checkingPhases) {
+            st += ",, " + phaseMismatches + " differ";
+        }
+        out += st + "\n\n";
+        p(st + "\n");
+    }
+
+    /* "same", or the first count that differs. The golden table may have more window sizes than the engine computed */
+    private static String diff(long[][] expected, long[][] c, String[] columns) {
+        for (int window = 1; window < c.length; window++) {
+            if (window >= expected.length || expected[window] == null) {
+                return "window " + window + " not in the golden table";
+            }
+            for (int i = 0; i < columns.length; i++) {
+                if (expected[window][i] != c[window][i]) {
+                    return "window " + window + " " + columns[i] + " " + expected[window][i] + " != " + c[window][i];
+                }
+            }
+        }
+        return "same";
+    }
+
+    /* Millions of (window size x trial) per second */
+    private static double throughput(long trials, long nanos) {
+        if (nanos <= 0) {
+            return 0;
+        }
+        return Math.round(trials * 1000.0 / nanos * 100) / 100.0;
+    }
+
+    private int totalMismatches() {
+        int total = phaseMismatches;
+        for (int m : engineMismatches) {
+            total += m;
+        }
+        return total;
+    }
+
+    public static void main(String[] args) {
+        EquivalenceCheck check = new EquivalenceCheck();
+
+        String goldenDir = "golden";
+        if (args != null && args.length > 1) {
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String key = args[i].toUpperCase();
+                String value = args[i + 1];
+                if (key.startsWith("-")) {
+                    key = key.substring(1);
+                }
+                if (key.startsWith("G")) {
+                    goldenDir = value;
+                }
+            }
+        }
+        try {
+            check.golden = readGolden(new File(goldenDir, "WindowTest.csv"), 5, COLUMNS.length);
+            check.goldenMixed = readGolden(new File(goldenDir, "WindowMixedTest.csv"), 6, MIXED_COLUMNS.length);
+        } catch (IOException | RuntimeException ex) {
+            p("Could not read the golden tables in " + goldenDir + ": " + ex.getMessage());
+            System.exit(1);
+        }
+
+        check.checkWindowTest();
+        int mismatches = check.totalMismatches();
+        check.checkWindowMixedTest();
+        mismatches += check.totalMismatches();
+
+        WindowTest.writeStringToFile(new File("equivalence.csv"), check.out, false);
+        if (mismatches > 0) {
+            p(mismatches + " results differ from the golden tables");
+            System.exit(1);
+        }
+        p("All engines reproduce the golden tables");
+    }
+
+    private static void p(String s) {
+        System.out.println(s);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 croth.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simulation;
+
+/**
+ * Running estimate of J for one window size, used for sequential early
+ * stopping. Every window (or trial) adds its contribution to J (+1 for a
+ * counted c11, -1 for a counted c12, c21 or c22, 0 otherwise).
+ *
+ * The contributions are not independent: the detection streams are periodic,
+ * so neighbouring windows (trials) are correlated. The standard error is
+ * therefore computed from batch means, one batch per block, and the callers
+ * make a block at least as long as the longest detection period. The batch
+ * means are treated as independent, which is an approximation.
+ *
+ * The sign of J is checked after MIN_BATCHES batches, and again every time the
+ * nr of batches doubles. Look k gets alpha / (k (k + 1)) of the error
+ * probability (these add up to alpha over all looks), and uses the Student t
+ * value for the nr of batches. The callers split 1 - confidence over the
+ * window sizes, so each window size gets alpha = (1 - confidence) / nr of
+ * window sizes.
+ *
+ * @author croth
+ */
+public class SequentialEstimate {
+
+    static final int MIN_BATCHES = 20;
+
+    long n;
+    double sum;
+
+    /* batch means */
+    long batches;
+    double batchSum;
+    double batchSumSq;
+    long batchN; // contributions in the current batch
+    double batchTotal;
+
+    int looks; // nr of times the bound was checked
+    long nextLook = MIN_BATCHES; // nr of batches at the next check
+    int sign; // +1 or -1 once the sign of J is decided, 0 while it is undecided
+
+    public void add(int contribution) {
+        n++;
+        sum += contribution;
+        batchN++;
+        batchTotal += contribution;
+    }
+
+    /* Close the current batch, at the end of a block */
+    public void endBatch() {
+        if (batchN == 0) {
+            return;
+        }
+        double m = batchTotal / batchN;
+        batches++;
+        batchSum += m;
+        batchSumSq += m * m;
+        batchN = 0;
+        batchTotal = 0;
+    }
+
+    /* Mean contribution to J per window (or trial) */
+    public double mean() {
+        if (n == 0) {
+            return 0;
+        }
+        return sum / n;
+    }
+
+    /* Standard error of the mean contribution, from the batch means */
+    public double standardError() {
+        if (batches < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double variance = (batchSumSq - batchSum * batchSum / batches) / (batches - 1);
+        return Math.sqrt(Math.max(0, variance) / batches);
+    }
+
+    /* The standard error for the csv output, inf while there are not enough batches */
+    public String formatStandardError() {
+        double se = standardError();
+        if (Double.isInfinite(se)) {
+            return "inf";
+        }
+        return String.valueOf(Math.round(se * 1000000) / 1000000.0);
+    }
+
+    /* Check the bound after a block. alpha is the error probability over all looks together.
+    Returns the sign of J (+1 or -1), or 0 if it is still undecided */
+    public int look(double alpha) {
+        if (sign != 0 || batches < nextLook) {
+            return sign;
+        }
+        looks++;
+        nextLook *= 2;
+        double se = standardError();
+        if (se == 0 || Double.isInfinite(se)) {
+            // all batches are the same, so there is no estimate of the spread
+            return 0;
+        }
+        double t = tValue(alpha / ((double) looks * (looks + 1)) / 2.0, batches - 1);
+        if (mean() > t * se) {
+            sign = 1;
+        } else if (mean() < -t * se) {
+            sign = -1;
+        }
+        return sign;
+    }
+
+    /* Student t value with the upper tail probability tail for dof degrees of freedom,
+    from the normal value with the expansion of Abramowitz and Stegun 26.7.5 */
+    public static double tValue(double tail, long dof) {
+        double z = zValue(tail);
+        if (Double.isInfinite(z)) {
+            return z;
+        }
+        double z3 = z * z * z;
+        double z5 = z3 * z * z;
+        double z7 = z5 * z * z;
+        double g1 = (z3 + z) / 4;
+        double g2 = (5 * z5 + 16 * z3 + 3 * z) / 96;
+        double g3 = (3 * z7 + 19 * z5 + 17 * z3 - 15 * z) / 384;
+        return z + g1 / dof + g2 / dof / dof + g3 / dof / dof / dof;
+    }
+
+    /* Normal value z with the upper tail probability tail (like 0.005 -> 2.576).
+    The tail is used directly, so even tiny tails keep their precision. tail <= 0 never decides.
+    Uses the rational approximation of the inverse normal distribution by P. J. Acklam */
+    public static double zValue(double tail) {
+        if (tail <= 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (tail >= 0.5) {
+            return 0;
+        }
+
+        double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+            1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+        double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+            6.680131188771972e+01, -1.328068155288572e+01};
+        double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+            -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+        double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00,
+            3.754408661907416e+00};
+
+        if (tail > 0.02425) {
+            // central region
+            double q = 0.5 - tail;
+            double r = q * q;
+            return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q
+                    / (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+        }
+        // tail region
+        double q = Math.sqrt(-2 * Math.log(tail));
+        return -(((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+                / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+    }
+}
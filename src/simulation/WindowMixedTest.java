@@ -39,19 +39,68 @@ import java.util.Random;
 public class WindowMixedTest {
 
     static Random rnd;
+    long seed;
+    boolean windowRandom; // each window size gets its own random generator, derived from seed
 
     int nrtrials;
     double efficiency;
     int uncertainty;
     boolean acceptDoubleCounts;
     double pnoise;
+    double confidence; // > 0: sequential mode, stop a window size once the sign of J is decided at this confidence
+    int blockSize; // nr of trials per window size that are run between two checks in sequential mode
+    int maxTrialsFactor; // sequential mode: a window size runs at most maxTrialsFactor * nrtrials trials
+
+    /* The detection probabilities, the detector angles and efficiencies */
+    double pa1;
+    double pa2;
+    double pb1;
+    double pb2;
+    double a1;
+    double a2;
+    double b1;
+    double b2;
+    double effa;
+    double effb;
+
+    /* Counts for one window size (long, since a window size can run more than nrtrials trials in sequential mode) */
+    static class Counts {
+
+        Random rnd; // the shared rnd, or the own generator of this window size with windowRandom
+
+        long c11;
+        long c12;
+        long c21;
+        long c22;
+
+        long tota1;
+        long tota2;
+        long totb1;
+        long totb2;
+
+        long tot11;
+        long tot12;
+        long tot21;
+        long tot22;
+    }
 
     public WindowMixedTest() {
         rnd = new Random();
         // Default random seed, can be overwritten via arguments in main
         rnd.setSeed(1234);
+        seed = 1234;
+        windowRandom = false;
         acceptDoubleCounts = true;
         pnoise = 0.4;
+        confidence = 0;
+        blockSize = 1000;
+        maxTrialsFactor = 1;
+
+        /* We chose probabilities that will lead to J < 0 */
+        pa1 = 0.9;
+        pa2 = 0.4;
+        pb1 = 0.8;
+        pb2 = 0.1;
     }
 
     /* Simply count the nr of coincidences of A and B using FIXED windows */
@@ -93,7 +142,7 @@ public class WindowMixedTest {
 
     /* Create a stream of detection events based on the detector angle detAngle and the efficiency. 
     Use a normal distribution to determine the probability to detect something */
-    private boolean[] createDetectionStream(double detAngle, int nr, long startTime, double eff) {
+    private boolean[] createDetectionStream(Random rnd, double detAngle, int nr, long startTime, double eff) {
         boolean[] det = new boolean[nr];
 
         for (int i = 0; i < nr; i++) {
@@ -140,17 +189,17 @@ public class WindowMixedTest {
 
     
 
-    private void simpleWindowTest() {
-        /* We chose probabilities that will lead to J < 0 */
-
-       
-        double effa = efficiency;
-        double effb = efficiency * 0.8;
-        double pa1 = 0.9;
-        double pa2 = 0.4;
-        double pb1 = 0.8;
-        double pb2 = 0.1;
+    /* The detector angles that belong to the detection probabilities, and the efficiencies at A and B */
+    void initAngles() {
+        effa = efficiency;
+        effb = efficiency * 0.8;
+        a1 = Math.acos(pa1);
+        a2 = Math.acos(pa2);
+        b1 = Math.acos(pb1);
+        b2 = Math.acos(pb2);
+    }
 
+    private void simpleWindowTest() {
         /* the joint probabilities that determine J */
         double p11 = pa1 * pb1;
         double p12 = pa1 * (1.0 - pb2);
@@ -160,10 +209,7 @@ public class WindowMixedTest {
         double jloc = p11 - p22 - p21 - p12;
 
         /* The detector angles */
-        double a1 = Math.acos(pa1);
-        double a2 = Math.acos(pa2);
-        double b1 = Math.acos(pb1);
-        double b2 = Math.acos(pb2);
+        initAngles();
 
         String out = "angles (degrees), a1, a2, b1, b2";
         out += ",,,efficiency, " + efficiency;
@@ -177,9 +223,20 @@ public class WindowMixedTest {
         out += "\n, " + round(p11, 6) + ", " + round(p12, 6) + ", " + round(p21, 6) + ", " + round(p22, 6);
         out += "\n\np11 - p12 - p21 - p22 = " + round(jloc, 6);
         out += "\n" + round(p11, 6) + " - " + round(p12, 6) + " - " + round(p21, 6) + " - " + round(p22, 6) + " = " + round(jloc, 6);
-        out += "\n\nwindow size, c11 (PP), c12 (P0), c21 (0P), c22 (PP), J,,  Total counts, c11 (PP) /counts, c12 (P0)/counts, c21 (0P) /counts, c22 (PP)/counts, J/counts, tot a1, tot a2, tot b2, tot b2\n";
+        out += "\n\nwindow size, c11 (PP), c12 (P0), c21 (0P), c22 (PP), J,,  Total counts, c11 (PP) /counts, c12 (P0)/counts, c21 (0P) /counts, c22 (PP)/counts, J/counts, tot a1, tot a2, tot b2, tot b2";
+        if (confidence > 0) {
+            out += ",, trials used, J/trial, std error, sign";
+        }
+        out += "\n";
         p(out);
 
+        if (confidence > 0) {
+            out += sequentialWindowTest(100);
+            writeStringToFile(new File("stream_n" + pnoise + "_u" + uncertainty + "_e" + efficiency + "_n" + nrtrials + "_double_" + acceptDoubleCounts + "_c" + confidence + (windowRandom ? "_wr" : "") + "_2.csv"), out, false);
+            p(out);
+            return;
+        }
+
         /* We create multiple parts, because we cannot reuse a measurement in practice!
          */
         int dw = 1;
@@ -188,75 +245,156 @@ public class WindowMixedTest {
             if (nrtrials < 200) {
                 p("______________________ WINDOW " + window + " ____________________");
             }
-            int c11 = 0;
-            int c12 = 0;
-            int c21 = 0;
-            int c22 = 0;
-
-            int tota1 = 0;
-            int tota2 = 0;
-            int totb1 = 0;
-            int totb2 = 0;
-
-            int tot11 = 0;
-            int tot12 = 0;
-            int tot21 = 0;
-            int tot22 = 0;
-
-            for (int trial = 0; trial < nrtrials; trial++) {
-                /* We create multiple parts, because we cannot reuse a measurement in practice! */
-                boolean choiceA1 = rnd.nextDouble() < 0.5;
-                boolean[] detA = createDetectionStream(choiceA1 ? a1 : a2, window, trial, effa);
-                boolean choiceB1 = rnd.nextDouble() < 0.5;
-                boolean[] detB = createDetectionStream(choiceB1 ? b1 : b2, window, trial, effb);
-
-                int pp = countCoincidences(window, 1, 1, detA, detB);
-                int pz = countCoincidences(window, 1, 0, detA, detB);
-                int zp = countCoincidences(window, 0, 1, detA, detB);
-                int zz = countCoincidences(window, 0, 0, detA, detB);
-                // test: sum shold be 1
-                int sanity = pp + pz + zp + zz;
-                if (sanity != 1) {
-                    //    p("Sanity test failed, total should be 1");
-                }
-                if (choiceA1) {
-                    tota1++;
-                } else {
-                    tota2++;
-                }
-                if (choiceB1) {
-                    totb1++;
-                } else {
-                    totb2++;
-                }
+            Counts counts = newCounts(window);
+            runTrials(window, 0, nrtrials, counts, null);
+            String st = formatRow(window, counts);
+            out += st + "\n";
+            p(st);
+        }
+        writeStringToFile(new File("stream_n"+pnoise+"_u" + uncertainty + "_e" + efficiency + "_n" + nrtrials + "_double_" + acceptDoubleCounts + (windowRandom ? "_wr" : "") + "_2.csv"), out, false);
+        p(out);
+    }
 
-                if (choiceA1 && choiceB1) {
-                    c11 += pp;
-                    tot11++;
-                } else if (choiceA1 && !choiceB1) {
-                    c12 += pz;
-                    tot12++;
-                } else if (!choiceA1 && choiceB1) {
-                    c21 += zp;
-                    tot21++;
-                } else if (!choiceA1 && !choiceB1) {
-                    c22 += pp;
-                    tot22++;
-                }
+    /* The longest period of the detection streams, in trials (one detection every 1 / p trials) */
+    int longestPeriod() {
+        double pmin = Math.min(Math.min(Math.cos(a1), Math.cos(a2)) * effa, Math.min(Math.cos(b1), Math.cos(b2)) * effb);
+        if (pmin <= 0) {
+            return 1;
+        }
+        return (int) Math.ceil(1.0 / pmin);
+    }
 
+    /* Empty counts for one window size. With windowRandom the window size gets its own random generator,
+    so its results do not depend on the order in which window sizes and blocks are run (but they differ from the shared rnd) */
+    Counts newCounts(int window) {
+        Counts counts = new Counts();
+        counts.rnd = windowRandom ? new Random(seed + window * 0x9E3779B97F4A7C15L) : rnd;
+        return counts;
+    }
+
+    /* Run trials firstTrial .. firstTrial + nr - 1 with the given window size and add the results to counts (and to est, if not null) */
+    void runTrials(int window, long firstTrial, int nr, Counts counts, SequentialEstimate est) {
+        for (long trial = firstTrial; trial < firstTrial + nr; trial++) {
+            /* We create multiple parts, because we cannot reuse a measurement in practice! */
+            boolean choiceA1 = counts.rnd.nextDouble() < 0.5;
+            boolean[] detA = createDetectionStream(counts.rnd, choiceA1 ? a1 : a2, window, trial, effa);
+            boolean choiceB1 = counts.rnd.nextDouble() < 0.5;
+            boolean[] detB = createDetectionStream(counts.rnd, choiceB1 ? b1 : b2, window, trial, effb);
+
+            int pp = countCoincidences(window, 1, 1, detA, detB);
+            int pz = countCoincidences(window, 1, 0, detA, detB);
+            int zp = countCoincidences(window, 0, 1, detA, detB);
+            int zz = countCoincidences(window, 0, 0, detA, detB);
+            // test: sum shold be 1
+            int sanity = pp + pz + zp + zz;
+            if (sanity != 1) {
+                //    p("Sanity test failed, total should be 1");
+            }
+            if (choiceA1) {
+                counts.tota1++;
+            } else {
+                counts.tota2++;
+            }
+            if (choiceB1) {
+                counts.totb1++;
+            } else {
+                counts.totb2++;
             }
-            // Compute J based on Counts
-            int j = c11 - c12 - c21 - c22;
 
-            long counts = c11 + c12 + c22 + c21;
-            String st = window + ", " + c11 + ", " + c12 + ", " + c21 + ", " + c22 + ", " + j + ",, " + counts;
-            st += ", " + format(c11, tot11) + ", " + format(c12, tot12) + ", " + format(c21, tot21) + ", " + format(c22, tot22) + ", " + format(j, counts);
-            st += ", " + tota1 + ", " + tota2 + ", " + totb1 + ", " + totb2;
+            int contribution = 0;
+            if (choiceA1 && choiceB1) {
+                counts.c11 += pp;
+                counts.tot11++;
+                contribution = pp;
+            } else if (choiceA1 && !choiceB1) {
+                counts.c12 += pz;
+                counts.tot12++;
+                contribution = -pz;
+            } else if (!choiceA1 && choiceB1) {
+                counts.c21 += zp;
+                counts.tot21++;
+                contribution = -zp;
+            } else if (!choiceA1 && !choiceB1) {
+                counts.c22 += pp;
+                counts.tot22++;
+                contribution = -pp;
+            }
+            if (est != null) {
+                est.add(contribution);
+            }
+        }
+    }
+
+    /* Sequential early stopping: all window sizes are run round robin, blockSize trials at a time.
+    A window size is retired as soon as the sign of J is decided at the given confidence.
+    The budget is nrtrials per window size, and what the retired window sizes did not use 
+    goes to the window sizes that are still undecided, up to maxTrialsFactor * nrtrials each.
+    A window size with J close to 0 is never decided, so without that cap it would use up the whole budget. Returns the csv rows */
+    private String sequentialWindowTest(int maxWindow) {
+        int period = longestPeriod();
+        if (blockSize < period) {
+            p("Block size " + blockSize + " is shorter than the longest detection period, using " + period);
+            blockSize = period;
+        }
+        double alpha = (1.0 - confidence) / maxWindow;
+        SequentialEstimate[] estimates = new SequentialEstimate[maxWindow + 1];
+        Counts[] counts = sequentialCounts(maxWindow, alpha, estimates);
+
+        long budget = (long) nrtrials * maxWindow;
+        long used = 0;
+        String out = "";
+        for (int window = 1; window <= maxWindow; window++) {
+            SequentialEstimate est = estimates[window];
+            used += est.n;
+            String st = formatRow(window, counts[window]);
+            st += ",, " + est.n + ", " + round(est.mean(), 6) + ", " + est.formatStandardError() + ", " + est.sign;
             out += st + "\n";
             p(st);
         }
-        writeStringToFile(new File("stream_n"+pnoise+"_u" + uncertainty + "_e" + efficiency + "_n" + nrtrials + "_double_" + acceptDoubleCounts + "_2.csv"), out, false);
-        p(out);
+        out += "\nused trials, " + used + ", of, " + budget + ", saved, " + (budget - used) + ", alpha per window size, " + alpha + "\n";
+        return out;
+    }
+
+    /* The counts (counts[window]) of the sequential mode, with the estimate of J per window size.
+    alpha is the error probability of each window size, 0 never decides */
+    Counts[] sequentialCounts(int maxWindow, double alpha, SequentialEstimate[] estimates) {
+        Counts[] counts = new Counts[maxWindow + 1];
+        for (int window = 1; window <= maxWindow; window++) {
+            estimates[window] = new SequentialEstimate();
+            counts[window] = newCounts(window);
+        }
+
+        long budget = (long) nrtrials * maxWindow;
+        long cap = (long) maxTrialsFactor * nrtrials;
+        long used = 0;
+        boolean undecided = true;
+        while (undecided && used < budget) {
+            undecided = false;
+            for (int window = 1; window <= maxWindow && used < budget; window++) {
+                if (estimates[window].sign != 0 || estimates[window].n >= cap) {
+                    continue;
+                }
+                int nr = (int) Math.min(Math.max(1, blockSize), Math.min(cap - estimates[window].n, budget - used));
+                runTrials(window, estimates[window].n, nr, counts[window], estimates[window]);
+                used += nr;
+                estimates[window].endBatch();
+                estimates[window].look(alpha);
+                undecided = true;
+            }
+        }
+        return counts;
+    }
+
+    /* One line of the csv output: the counts, J and the counts relative to the nr of trials per setting */
+    private String formatRow(int window, Counts c) {
+        // Compute J based on Counts
+        long j = c.c11 - c.c12 - c.c21 - c.c22;
+
+        long counts = c.c11 + c.c12 + c.c22 + c.c21;
+        String st = window + ", " + c.c11 + ", " + c.c12 + ", " + c.c21 + ", " + c.c22 + ", " + j + ",, " + counts;
+        st += ", " + format(c.c11, c.tot11) + ", " + format(c.c12, c.tot12) + ", " + format(c.c21, c.tot21) + ", " + format(c.c22, c.tot22) + ", " + format(j, counts);
+        st += ", " + c.tota1 + ", " + c.tota2 + ", " + c.totb1 + ", " + c.totb2;
+        return st;
     }
 
     private double format(long c, long t) {
@@ -272,6 +410,10 @@ public class WindowMixedTest {
         double efficiency = 0.01;
         int uncertainty = 2;
         double noise = 1.0;
+        boolean windowRandom = false;
+        double confidence = 0;
+        int blockSize = 1000;
+        int maxTrialsFactor = 1;
         if (args != null && args.length > 1) {
             for (int i = 0; i + 1 < args.length; i += 2) {
                 String key = args[i].toUpperCase();
@@ -309,6 +451,26 @@ public class WindowMixedTest {
                     } catch (Exception ex) {
                         p("Could not convert " + value + " to int. Try something like 2");
                     }
+                } else if (key.startsWith("C")) {
+                    try {
+                        confidence = Double.parseDouble(value);
+                    } catch (Exception ex) {
+                        p("Could not convert " + value + " to double. Try something like 0.99");
+                    }
+                } else if (key.startsWith("B")) {
+                    try {
+                        blockSize = Integer.parseInt(value);
+                    } catch (Exception ex) {
+                        p("Could not convert " + value + " to int. Try something like 1000");
+                    }
+                } else if (key.startsWith("W")) {
+                    windowRandom = Boolean.parseBoolean(value);
+                } else if (key.startsWith("M")) {
+                    try {
+                        maxTrialsFactor = Integer.parseInt(value);
+                    } catch (Exception ex) {
+                        p("Could not convert " + value + " to int. Try something like 2");
+                    }
                 }
 
             }
@@ -318,6 +480,19 @@ public class WindowMixedTest {
         s.efficiency = efficiency;
         s.uncertainty = uncertainty;
         s.pnoise = noise;
+        s.confidence = confidence;
+        if (blockSize < 1) {
+            p("Block size must be at least 1, using 1000");
+            blockSize = 1000;
+        }
+        s.blockSize = blockSize;
+        if (maxTrialsFactor < 1) {
+            p("Max trials factor must be at least 1, using 1");
+            maxTrialsFactor = 1;
+        }
+        s.maxTrialsFactor = maxTrialsFactor;
+        s.windowRandom = windowRandom;
+        s.seed = seed;
         rnd.setSeed(seed);
         s.simpleWindowTest();
 
@@ -54,12 +54,34 @@ public class WindowTest {
     double efficiency;
     int uncertainty;
     boolean acceptDoubleCounts;
+    boolean scanPhases; // also evaluate all phase offsets of the window grid
+    double confidence; // > 0: sequential mode, stop a window size once the sign of J is decided at this confidence
+    int blockSize; // nr of trials per window size that are counted between two checks in sequential mode
+
+    /* The detection probabilities and the detector angles */
+    double pa1;
+    double pa2;
+    double pb1;
+    double pb2;
+    double a1;
+    double a2;
+    double b1;
+    double b2;
 
     public WindowTest() {
         rnd = new Random();
         // Default random seed, can be overwritten via arguments in main
         rnd.setSeed(1234);
         acceptDoubleCounts = true;
+        scanPhases = false;
+        confidence = 0;
+        blockSize = 2000;
+
+        /* We chose probabilities that will lead to J < 0 */
+        pa1 = 0.85;
+        pa2 = 0.4;
+        pb1 = 0.9;
+        pb2 = 0.1;
     }
 
     /* Simply count the nr of coincidences of A and B using FIXED windows */
@@ -99,6 +121,119 @@ public class WindowTest {
         return count;
     }
 
+    /* Count the nr of coincidences of A and B for every phase offset of the FIXED window grid.
+    Entry 0 is the same as countCoincidences, entry k is the count when the first window starts at slot k.
+    Adjacent offsets are computed from each other: shifting the grid by one slot removes the first slot
+    of each window and adds the slot after its end, so all offsets together cost O(nrtrials) and not O(nrtrials * windowSize).
+    The detections per window are kept as short (a window has at most windowSize detections), to save memory at 10^8 trials */
+    public int[] countCoincidencesPerPhase(int windowSize, int a, int b, boolean[] deta, boolean[] detb) {
+        if (windowSize > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Window size " + windowSize + " is too large for the phase scan");
+        }
+        int[] counts = new int[windowSize];
+        if (windowSize == 1) {
+            // only one phase, and every slot is its own window
+            for (int i = 0; i < nrtrials; i++) {
+                if (isCoincidence(deta[i] ? 1 : 0, detb[i] ? 1 : 0, a, b)) {
+                    counts[0]++;
+                }
+            }
+            return counts;
+        }
+        int nrwindows = nrtrials / windowSize;
+        short[] aDetected = new short[nrwindows];
+        short[] bDetected = new short[nrwindows];
+
+        int count = 0;
+        for (int w = 0; w < nrwindows; w++) {
+            int position = w * windowSize;
+            for (int i = 0; i < windowSize; i++) {
+                if (deta[position + i]) {
+                    aDetected[w]++;
+                }
+                if (detb[position + i]) {
+                    bDetected[w]++;
+                }
+            }
+            if (isCoincidence(aDetected[w], bDetected[w], a, b)) {
+                count++;
+            }
+        }
+        counts[0] = count;
+
+        for (int offset = 1; offset < windowSize; offset++) {
+            // the last window is dropped once it no longer fits into the stream
+            int validWindows = (nrtrials - offset) / windowSize;
+            if (validWindows < nrwindows) {
+                if (isCoincidence(aDetected[validWindows], bDetected[validWindows], a, b)) {
+                    count--;
+                }
+                nrwindows = validWindows;
+            }
+            for (int w = 0; w < nrwindows; w++) {
+                int removed = offset - 1 + w * windowSize;
+                int added = removed + windowSize;
+                if (deta[removed] == deta[added] && detb[removed] == detb[added]) {
+                    continue;
+                }
+                boolean before = isCoincidence(aDetected[w], bDetected[w], a, b);
+                if (deta[removed]) {
+                    aDetected[w]--;
+                }
+                if (deta[added]) {
+                    aDetected[w]++;
+                }
+                if (detb[removed]) {
+                    bDetected[w]--;
+                }
+                if (detb[added]) {
+                    bDetected[w]++;
+                }
+                boolean after = isCoincidence(aDetected[w], bDetected[w], a, b);
+                if (before && !after) {
+                    count--;
+                } else if (after && !before) {
+                    count++;
+                }
+            }
+            counts[offset] = count;
+        }
+        return counts;
+    }
+
+    /* 1 if the FIXED window starting at startOfWindow is a coincidence of type a, b, 0 otherwise */
+    int coincidence(int startOfWindow, int windowSize, int a, int b, boolean[] deta, boolean[] detb) {
+        int aDetected = 0;
+        int bDetected = 0;
+        for (int i = startOfWindow; i < startOfWindow + windowSize; i++) {
+            if (deta[i]) {
+                aDetected++;
+            }
+            if (detb[i]) {
+                bDetected++;
+            }
+        }
+        return isCoincidence(aDetected, bDetected, a, b) ? 1 : 0;
+    }
+
+    /* The longest period of the detection streams, in trials (one detection every 1 / p trials) */
+    int longestPeriod() {
+        double pmin = Math.min(Math.min(Math.cos(a1), Math.cos(a2)), Math.min(Math.cos(b1), Math.cos(b2))) * efficiency;
+        if (pmin <= 0) {
+            return 1;
+        }
+        return (int) Math.ceil(1.0 / pmin);
+    }
+
+    /* A window with aDetected and bDetected detection events counts as a coincidence of type a, b */
+    private boolean isCoincidence(int aDetected, int bDetected, int a, int b) {
+        if (acceptDoubleCounts) {
+            aDetected = Math.min(1, aDetected);
+            bDetected = Math.min(1, bDetected);
+        }
+        return aDetected == a && bDetected == b;
+    }
+
     /* Create a stream of detection events based on the detector angle detAngle and the efficiency. 
     Use a normal distribution to determine the probability to detect something */
     private boolean[] createDetectionStream(double detAngle) {
@@ -133,14 +268,37 @@ public class WindowTest {
         return det;
     }
 
-    private void simpleWindowTest() {
-        /* We chose probabilities that will lead to J < 0 */
+    /* The detector angles that belong to the detection probabilities */
+    void initAngles() {
+        a1 = Math.acos(pa1);
+        a2 = Math.acos(pa2);
+        b1 = Math.acos(pb1);
+        b2 = Math.acos(pb2);
+    }
 
-        double pa1 = 0.85;
-        double pa2 = 0.4;
-        double pb1 = 0.9;
-        double pb2 = 0.1;
+    /* We create multiple parts, because we cannot reuse a measurement in practice! */
+    void createStreams() {
+        deta1_part1 = createDetectionStream(a1);
+        deta2_part1 = createDetectionStream(a2);
+        detb1_part1 = createDetectionStream(b1);
+        detb2_part1 = createDetectionStream(b2);
+        deta1_part2 = createDetectionStream(a1);
+        deta2_part2 = createDetectionStream(a2);
+        detb1_part2 = createDetectionStream(b1);
+        detb2_part2 = createDetectionStream(b2);
+    }
+
+    /* c11, c12, c21 and c22 for one window size */
+    int[] countRow(int window) {
+        /* We create multiple parts, because we cannot reuse a measurement in practice! */
+        int c11 = countCoincidences(window, 1, 1, deta1_part1, detb1_part1);
+        int c12 = countCoincidences(window, 1, 0, deta1_part2, detb2_part1);
+        int c21 = countCoincidences(window, 0, 1, deta2_part1, detb1_part2);
+        int c22 = countCoincidences(window, 1, 1, deta2_part2, detb2_part2);
+        return new int[]{c11, c12, c21, c22};
+    }
 
+    private void simpleWindowTest() {
         /* the joint probabilities that determine J */
         double p11 = pa1 * pb1;        
         double p12 = pa1 * (1.0 - pb2);
@@ -150,10 +308,7 @@ public class WindowTest {
         double jloc = p11 - p22 - p21 - p12;
 
         /* The detector angles */
-        double a1 = Math.acos(pa1);
-        double a2 = Math.acos(pa2);
-        double b1 = Math.acos(pb1);
-        double b2 = Math.acos(pb2);
+        initAngles();
 
         String out = "angles (degrees), a1, a2, b1, b2";
         out += ",,,efficiency, " + efficiency;
@@ -166,19 +321,23 @@ public class WindowTest {
         out += "\n, " + round(p11, 6) + ", " + round(p12, 6) + ", " + round(p21, 6) + ", " + round(p22, 6);
         out += "\n\np11 - p12 - p21 - p22 = " + round(jloc, 6);
         out += "\n" + round(p11, 6) + " - " + round(p12, 6) + " - " + round(p21, 6) + " - " + round(p22, 6) + " = " + round(jloc, 6);
-        out += "\n\nwindow size, c11 (PP), c12 (P0), c21 (0P), c22 (PP), J,,  Total counts, c11 (PP) /counts, c12 (P0)/counts, c21 (0P) /counts, c22 (PP)/counts, J/counts\n";
+        out += "\n\nwindow size, c11 (PP), c12 (P0), c21 (0P), c22 (PP), J,,  Total counts, c11 (PP) /counts, c12 (P0)/counts, c21 (0P) /counts, c22 (PP)/counts, J/counts";
+        if (confidence > 0) {
+            out += ",, windows used, J/window, std error, sign";
+        } else if (scanPhases) {
+            out += ",, J min (phases), J max (phases), J mean (phases)";
+        }
+        out += "\n";
         p(out);
 
-        /* We create multiple parts, because we cannot reuse a measurement in practice!
-         */
-        deta1_part1 = createDetectionStream(a1);
-        deta2_part1 = createDetectionStream(a2);
-        detb1_part1 = createDetectionStream(b1);
-        detb2_part1 = createDetectionStream(b2);
-        deta1_part2 = createDetectionStream(a1);
-        deta2_part2 = createDetectionStream(a2);
-        detb1_part2 = createDetectionStream(b1);
-        detb2_part2 = createDetectionStream(b2);
+        createStreams();
+
+        if (confidence > 0) {
+            out += sequentialWindowTest(200);
+            writeStringToFile(new File("stream_u" + uncertainty + "_e" + efficiency + "_n" + nrtrials + "_double_" + acceptDoubleCounts + "_c" + confidence + ".csv"), out, false);
+            p(out);
+            return;
+        }
 
         int dw = 1;
         for (int window = 1; window <= 200; window += dw) {
@@ -186,25 +345,115 @@ public class WindowTest {
             if (nrtrials < 200) {
                 p("______________________ WINDOW " + window + " ____________________");
             }
-            /* We create multiple parts, because we cannot reuse a measurement in practice! */
-            int c11 = countCoincidences(window, 1, 1, deta1_part1, detb1_part1);
-            int c12 = countCoincidences(window, 1, 0, deta1_part2, detb2_part1);
-            int c21 = countCoincidences(window, 0, 1, deta2_part1, detb1_part2);
-            int c22 = countCoincidences(window, 1, 1, deta2_part2, detb2_part2);
-
-            // Compute J based on Counts
-            int j = c11 - c12 - c21 - c22;
-
-            long counts = c11 + c12 + c22 + c21;
-            String st = window + ", " + c11 + ", " + c12 + ", " + c21 + ", " + c22 + ", " + j + ",, " + counts;
-            st += ", " + format(c11, counts) + ", " + format(c12, counts) + ", " + format(c21, counts) + ", " + format(c22, counts) + ", " + format(j, counts);
+            int[] c = countRow(window);
+            String st = formatRow(window, c[0], c[1], c[2], c[3]);
+            if (scanPhases) {
+                /* J for every possible start of the window grid */
+                int[] c11phases = countCoincidencesPerPhase(window, 1, 1, deta1_part1, detb1_part1);
+                int[] c12phases = countCoincidencesPerPhase(window, 1, 0, deta1_part2, detb2_part1);
+                int[] c21phases = countCoincidencesPerPhase(window, 0, 1, deta2_part1, detb1_part2);
+                int[] c22phases = countCoincidencesPerPhase(window, 1, 1, deta2_part2, detb2_part2);
+                int jmin = Integer.MAX_VALUE;
+                int jmax = Integer.MIN_VALUE;
+                long jsum = 0;
+                for (int offset = 0; offset < window; offset++) {
+                    int jphase = c11phases[offset] - c12phases[offset] - c21phases[offset] - c22phases[offset];
+                    jmin = Math.min(jmin, jphase);
+                    jmax = Math.max(jmax, jphase);
+                    jsum += jphase;
+                }
+                st += ",, " + jmin + ", " + jmax + ", " + round((double) jsum / window, 2);
+            }
             out += st + "\n";
             p(st);
         }
-        writeStringToFile(new File("stream_u" + uncertainty + "_e" + efficiency + "_n" + nrtrials + "_double_" + acceptDoubleCounts + ".csv"), out, false);
+        String phases = scanPhases ? "_phases" : "";
+        writeStringToFile(new File("stream_u" + uncertainty + "_e" + efficiency + "_n" + nrtrials + "_double_" + acceptDoubleCounts + phases + ".csv"), out, false);
         p(out);
     }
 
+    /* Sequential early stopping: all window sizes are counted round robin, blockSize trials at a time.
+    A window size is retired as soon as the sign of J is decided at the given confidence (see SequentialEstimate), 
+    so the remaining compute goes to the window sizes that are still undecided */
+    private String sequentialWindowTest(int maxWindow) {
+        int period = longestPeriod();
+        if (blockSize < period) {
+            p("Block size " + blockSize + " is shorter than the longest detection period, using " + period);
+            blockSize = period;
+        }
+        double alpha = (1.0 - confidence) / maxWindow;
+        SequentialEstimate[] estimates = new SequentialEstimate[maxWindow + 1];
+        int[][] c = sequentialCounts(maxWindow, alpha, estimates);
+
+        long counted = 0;
+        long total = 0;
+        for (int window = 1; window <= maxWindow; window++) {
+            counted += estimates[window].n * window;
+            total += (long) (nrtrials / window) * window;
+        }
+
+        String out = "";
+        for (int window = 1; window <= maxWindow; window++) {
+            SequentialEstimate est = estimates[window];
+            String st = formatRow(window, c[window][0], c[window][1], c[window][2], c[window][3]);
+            st += ",, " + est.n + ", " + round(est.mean(), 6) + ", " + est.formatStandardError() + ", " + est.sign;
+            out += st + "\n";
+            p(st);
+        }
+        out += "\ncounted trials, " + counted + ", of, " + total + ", saved, " + (total - counted) + ", alpha per window size, " + alpha + "\n";
+        return out;
+    }
+
+    /* The counts c11, c12, c21, c22 (c[window]) of the sequential mode, with the estimate of J per window size.
+    alpha is the error probability of each window size, 0 never decides */
+    int[][] sequentialCounts(int maxWindow, double alpha, SequentialEstimate[] estimates) {
+        int[][] c = new int[maxWindow + 1][4];
+        int[] next = new int[maxWindow + 1]; // index of the next window to count
+        for (int window = 1; window <= maxWindow; window++) {
+            estimates[window] = new SequentialEstimate();
+        }
+
+        boolean undecided = true;
+        while (undecided) {
+            undecided = false;
+            for (int window = 1; window <= maxWindow; window++) {
+                int nrwindows = nrtrials / window;
+                if (next[window] >= nrwindows || estimates[window].sign != 0) {
+                    continue;
+                }
+                int end = Math.min(nrwindows, next[window] + Math.max(1, blockSize / window));
+                for (int k = next[window]; k < end; k++) {
+                    int startOfWindow = k * window;
+                    int m11 = coincidence(startOfWindow, window, 1, 1, deta1_part1, detb1_part1);
+                    int m12 = coincidence(startOfWindow, window, 1, 0, deta1_part2, detb2_part1);
+                    int m21 = coincidence(startOfWindow, window, 0, 1, deta2_part1, detb1_part2);
+                    int m22 = coincidence(startOfWindow, window, 1, 1, deta2_part2, detb2_part2);
+                    c[window][0] += m11;
+                    c[window][1] += m12;
+                    c[window][2] += m21;
+                    c[window][3] += m22;
+                    estimates[window].add(m11 - m12 - m21 - m22);
+                }
+                next[window] = end;
+                estimates[window].endBatch();
+                estimates[window].look(alpha);
+                undecided = true;
+            }
+        }
+        return c;
+    }
+
+    /* One line of the csv output: the counts, J and the counts relative to the total nr of counts */
+    private String formatRow(int window, int c11, int c12, int c21, int c22) {
+        // Compute J based on Counts
+        int j = c11 - c12 - c21 - c22;
+
+        long counts = c11 + c12 + c22 + c21;
+        String st = window + ", " + c11 + ", " + c12 + ", " + c21 + ", " + c22 + ", " + j + ",, " + counts;
+        st += ", " + format(c11, counts) + ", " + format(c12, counts) + ", " + format(c21, counts) + ", " + format(c22, counts) + ", " + format(j, counts);
+        return st;
+    }
+
     private double format(long c, long t) {
         return round((double) c / (double) t, 6);
     }
@@ -217,6 +466,9 @@ public class WindowTest {
         int trials = 10000000;
         double efficiency = 0.1;
         int uncertainty = 1;
+        boolean phases = false;
+        double confidence = 0;
+        int blockSize = 2000;
         if (args != null && args.length > 1) {
             for (int i = 0; i + 1 < args.length; i += 2) {
                 String key = args[i].toUpperCase();
@@ -248,6 +500,20 @@ public class WindowTest {
                     } catch (Exception ex) {
                         p("Could not convert " + value + " to int. Try something like 2");
                     }
+                } else if (key.startsWith("P")) {
+                    phases = Boolean.parseBoolean(value);
+                } else if (key.startsWith("C")) {
+                    try {
+                        confidence = Double.parseDouble(value);
+                    } catch (Exception ex) {
+                        p("Could not convert " + value + " to double. Try something like 0.99");
+                    }
+                } else if (key.startsWith("B")) {
+                    try {
+                        blockSize = Integer.parseInt(value);
+                    } catch (Exception ex) {
+                        p("Could not convert " + value + " to int. Try something like 2000");
+                    }
                 }
 
             }
@@ -256,6 +522,17 @@ public class WindowTest {
         s.nrtrials = trials;
         s.efficiency = efficiency;
         s.uncertainty = uncertainty;
+        if (phases && confidence > 0) {
+            p("The phase scan is not available in sequential mode (confidence > 0), ignoring phases");
+            phases = false;
+        }
+        s.scanPhases = phases;
+        s.confidence = confidence;
+        if (blockSize < 1) {
+            p("Block size must be at least 1, using 2000");
+            blockSize = 2000;
+        }
+        s.blockSize = blockSize;
         rnd.setSeed(seed);
         s.simpleWindowTest();
 